@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import io.micrometer.contextpropagation.MapPropagationContext;
+import io.micrometer.contextpropagation.PropagationContext;
+import io.micrometer.contextpropagation.Scope;
+import io.micrometer.contextpropagation.reactor.ReactorPropagationHooks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+/**
+ * Compares {@link ReactorPropagationHooks} with scoping every {@code doOnNext} by hand, as done in {@code ReactorTests}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReactorPropagationBenchmark {
+
+    @Benchmark
+    public void handWrittenDoOnNextScoping(PipelineState state, Blackhole blackhole) {
+        Flux.range(0, state.elements)
+                .publishOn(Schedulers.parallel())
+                .transformDeferredContextual((flux, contextView) -> flux
+                        .doOnNext(i -> {
+                            try (Scope scope = contextView.get(PropagationContext.class).makeCurrent()) {
+                                blackhole.consume(ThreadLocalScope.threadLocal.get());
+                            }
+                        }))
+                .contextWrite(context -> context.put(PropagationContext.class, propagationContext(context)))
+                .contextWrite(state.context)
+                .blockLast();
+    }
+
+    @Benchmark
+    public void hooks(HooksState state, Blackhole blackhole) {
+        Flux.range(0, state.elements)
+                .publishOn(Schedulers.parallel())
+                .doOnNext(i -> blackhole.consume(ThreadLocalScope.threadLocal.get()))
+                .contextWrite(state.context)
+                .blockLast();
+    }
+
+    @Benchmark
+    public void hooksWithEmptyContext(HooksState state, Blackhole blackhole) {
+        Flux.range(0, state.elements)
+                .publishOn(Schedulers.parallel())
+                .doOnNext(i -> blackhole.consume(ThreadLocalScope.threadLocal.get()))
+                .blockLast();
+    }
+
+    @Benchmark
+    public void noPropagation(PipelineState state, Blackhole blackhole) {
+        Flux.range(0, state.elements)
+                .publishOn(Schedulers.parallel())
+                .doOnNext(i -> blackhole.consume(ThreadLocalScope.threadLocal.get()))
+                .contextWrite(state.context)
+                .blockLast();
+    }
+
+    static PropagationContext propagationContext(ContextView contextView) {
+        Map<Object, Object> entries = contextView.stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return new MapPropagationContext(new ConcurrentHashMap<>(entries), new ThreadLocalScope());
+    }
+
+    @State(org.openjdk.jmh.annotations.Scope.Benchmark)
+    public static class PipelineState {
+
+        @Param({ "1", "100" })
+        int elements;
+
+        final Context context = Context.of(String.class, "HELLO");
+    }
+
+    @State(org.openjdk.jmh.annotations.Scope.Benchmark)
+    public static class HooksState extends PipelineState {
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ReactorPropagationHooks.enable(subscriber -> propagationContext(((CoreSubscriber<?>) subscriber).currentContext()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ReactorPropagationHooks.disable();
+        }
+    }
+
+    static class ThreadLocalScope implements Scope {
+
+        static final ThreadLocal<String> threadLocal = new ThreadLocal<>();
+
+        @Override
+        public Scope open(PropagationContext propagationContext) {
+            if (propagationContext.hasKey(String.class)) {
+                threadLocal.set(propagationContext.get(String.class));
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            threadLocal.remove();
+        }
+    }
+}
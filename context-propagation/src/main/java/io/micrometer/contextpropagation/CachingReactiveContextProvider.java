@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.reactivestreams.Subscriber;
+
+/**
+ * A {@link ReactiveContextProvider} that caches the {@link PropagationContext} built by a delegate provider per subscriber.
+ *
+ * Subscribers are held by weak references and compared by identity, so a cached entry never keeps its subscriber alive and is
+ * dropped once the subscriber has been garbage collected. A cached entry is reused for as long as the context key extracted from the
+ * subscriber is the same instance (e.g. Reactor's {@code CoreSubscriber::currentContext}); once it changes, the context is rebuilt.
+ * Cache hits do not take any lock.
+ *
+ * Entries of collected subscribers are removed on the next call to {@link #getContext(Subscriber)} or {@link #size()}; until then
+ * the entry and its context stay in the cache, also when no more calls happen at all.
+ *
+ * The cached {@link PropagationContext} must not hold a strong reference to its subscriber, otherwise the entry can never be collected.
+ *
+ * @since 1.0.0
+ */
+@ThreadSafe
+public class CachingReactiveContextProvider implements ReactiveContextProvider {
+
+    private static final Object SUBSCRIBER_LIFETIME = new Object();
+
+    private final ReactiveContextProvider delegate;
+
+    private final Function<Subscriber<?>, Object> contextKeyFunction;
+
+    private final Map<Object, CachedContext> cache = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<Subscriber<?>> expiredSubscribers = new ReferenceQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Caches the context for the whole lifetime of the subscriber, even if the subscriber's own context changes in the meantime.
+     * Use {@link #CachingReactiveContextProvider(ReactiveContextProvider, Function)} to rebuild it on such changes, or
+     * {@code ReactorContextProviders#cachingByContext} for Reactor subscribers.
+     *
+     * @param delegate provider that builds the context on a cache miss
+     */
+    public CachingReactiveContextProvider(ReactiveContextProvider delegate) {
+        this(delegate, subscriber -> SUBSCRIBER_LIFETIME);
+    }
+
+    /**
+     * Caches the context until the key returned by the given function for the subscriber is a different instance.
+     *
+     * @param delegate provider that builds the context on a cache miss
+     * @param contextKeyFunction returns the object whose identity the cached context depends on, must not return the subscriber itself
+     */
+    public CachingReactiveContextProvider(ReactiveContextProvider delegate, Function<Subscriber<?>, Object> contextKeyFunction) {
+        this.delegate = delegate;
+        this.contextKeyFunction = contextKeyFunction;
+    }
+
+    @Override
+    public PropagationContext getContext(Subscriber<?> subscriber) {
+        Object contextKey = this.contextKeyFunction.apply(subscriber);
+        CachedContext cached = this.cache.get(new LookupKey(subscriber));
+        expungeExpiredSubscribers();
+        if (cached != null && cached.contextKey == contextKey) {
+            this.hits.increment();
+            return cached.context;
+        }
+        this.misses.increment();
+        PropagationContext context = this.delegate.getContext(subscriber);
+        this.cache.put(new SubscriberKey(subscriber, this.expiredSubscribers), new CachedContext(contextKey, context));
+        return context;
+    }
+
+    /**
+     * @return number of calls that returned a cached context
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of calls that had to build the context with the delegate provider
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return number of subscribers that currently have a cached context
+     */
+    public int size() {
+        expungeExpiredSubscribers();
+        return this.cache.size();
+    }
+
+    /**
+     * Cheap when nothing was collected, {@link ReferenceQueue#poll()} then only reads its head.
+     */
+    private void expungeExpiredSubscribers() {
+        Reference<? extends Subscriber<?>> reference;
+        while ((reference = this.expiredSubscribers.poll()) != null) {
+            this.cache.remove(reference);
+        }
+    }
+
+    private static final class CachedContext {
+
+        private final Object contextKey;
+
+        private final PropagationContext context;
+
+        private CachedContext(Object contextKey, PropagationContext context) {
+            this.contextKey = contextKey;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Key stored in the cache. Once the subscriber is collected the key is only equal to itself, so it can still be removed.
+     */
+    private static final class SubscriberKey extends WeakReference<Subscriber<?>> {
+
+        private final int hash;
+
+        private SubscriberKey(Subscriber<?> subscriber, ReferenceQueue<Subscriber<?>> queue) {
+            super(subscriber, queue);
+            this.hash = System.identityHashCode(subscriber);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SubscriberKey)) {
+                return false;
+            }
+            Subscriber<?> subscriber = get();
+            return subscriber != null && subscriber == ((SubscriberKey) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * Short-lived key used for reads, so that a cache hit does not allocate a {@link WeakReference}.
+     */
+    private static final class LookupKey {
+
+        private final Subscriber<?> subscriber;
+
+        private LookupKey(Subscriber<?> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            return o instanceof SubscriberKey && ((SubscriberKey) o).get() == this.subscriber;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.subscriber);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link PropagationContext} created by {@link PropagationContext#fork()}. Holds only its own entries and resolves the remaining
+ * ones through its parent. Becomes read-only once it is forked itself. A fork of a context at {@link #MAX_DEPTH} is attached to a
+ * collapsed copy of that context's chain instead, which merges the entries of all the forks but still resolves through the same root.
+ * The collapsed copy is computed once and shared by all such forks, so that lookups never walk more than {@link #MAX_DEPTH} levels.
+ *
+ * @since 1.0.0
+ */
+final class ForkedPropagationContext implements PropagationContext {
+
+    static final int MAX_DEPTH = 8;
+
+    /**
+     * Marks a key deleted in this context. Kept even if no ancestor has the key, because the root may still get it later.
+     */
+    private static final Object DELETED = new Object();
+
+    private final PropagationContext parent;
+
+    private final int depth;
+
+    private final Map<Object, Object> overrides;
+
+    private final List<Scope> scopes;
+
+    private volatile boolean frozen;
+
+    @Nullable
+    private volatile ForkedPropagationContext collapsed;
+
+    ForkedPropagationContext(PropagationContext parent) {
+        this.overrides = new ConcurrentHashMap<>();
+        this.scopes = new ArrayList<>(parent.getScopes());
+        if (parent instanceof ForkedPropagationContext) {
+            ForkedPropagationContext forkedParent = (ForkedPropagationContext) parent;
+            forkedParent.frozen = true;
+            if (forkedParent.depth >= MAX_DEPTH) {
+                this.parent = forkedParent.collapsed();
+                this.depth = 2;
+            }
+            else {
+                this.parent = parent;
+                this.depth = forkedParent.depth + 1;
+            }
+        }
+        else {
+            this.parent = parent;
+            this.depth = 1;
+        }
+    }
+
+    private ForkedPropagationContext(PropagationContext root, Map<Object, Object> overrides, List<Scope> scopes) {
+        this.parent = root;
+        this.depth = 1;
+        this.overrides = overrides;
+        this.scopes = scopes;
+        this.frozen = true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key) {
+        ForkedPropagationContext context = this;
+        while (true) {
+            Object value = context.overrides.get(key);
+            if (value != null) {
+                return value == DELETED ? null : (T) value;
+            }
+            if (!(context.parent instanceof ForkedPropagationContext)) {
+                return context.parent.get(key);
+            }
+            context = (ForkedPropagationContext) context.parent;
+        }
+    }
+
+    @Override
+    public boolean hasKey(Object key) {
+        ForkedPropagationContext context = this;
+        while (true) {
+            Object value = context.overrides.get(key);
+            if (value != null) {
+                return value != DELETED;
+            }
+            if (!(context.parent instanceof ForkedPropagationContext)) {
+                return context.parent.hasKey(key);
+            }
+            context = (ForkedPropagationContext) context.parent;
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        Set<Object> deleted = null;
+        ForkedPropagationContext context = this;
+        while (true) {
+            for (Map.Entry<Object, Object> entry : context.overrides.entrySet()) {
+                if (deleted != null && deleted.contains(entry.getKey())) {
+                    continue;
+                }
+                if (entry.getValue() != DELETED) {
+                    return false;
+                }
+                if (deleted == null) {
+                    deleted = new HashSet<>();
+                }
+                deleted.add(entry.getKey());
+            }
+            if (!(context.parent instanceof ForkedPropagationContext)) {
+                break;
+            }
+            context = (ForkedPropagationContext) context.parent;
+        }
+        PropagationContext root = context.parent;
+        if (root.isEmpty()) {
+            return true;
+        }
+        if (deleted == null) {
+            return false;
+        }
+        Set<Object> deletedKeys = deleted;
+        return root.stream().allMatch(entry -> deletedKeys.contains(entry.getKey()));
+    }
+
+    @Override
+    public PropagationContext put(Object key, Object value) {
+        assertNotFrozen();
+        this.overrides.put(key, value);
+        return this;
+    }
+
+    @Override
+    public PropagationContext delete(Object key) {
+        assertNotFrozen();
+        this.overrides.put(key, DELETED);
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return flatten().size();
+    }
+
+    @Override
+    public Stream<Map.Entry<Object, Object>> stream() {
+        return flatten().entrySet().stream();
+    }
+
+    @Override
+    public List<Scope> getScopes() {
+        return this.scopes;
+    }
+
+    int getDepth() {
+        return this.depth;
+    }
+
+    PropagationContext getParent() {
+        return this.parent;
+    }
+
+    private void assertNotFrozen() {
+        if (this.frozen) {
+            throw new IllegalStateException("Context has been forked and can no longer be modified");
+        }
+    }
+
+    /**
+     * @return a copy of this context attached directly to the root, with the entries of all forks in between merged
+     */
+    private ForkedPropagationContext collapsed() {
+        ForkedPropagationContext result = this.collapsed;
+        if (result == null) {
+            synchronized (this) {
+                result = this.collapsed;
+                if (result == null) {
+                    Deque<ForkedPropagationContext> chain = chain();
+                    Map<Object, Object> merged = new ConcurrentHashMap<>();
+                    for (ForkedPropagationContext fork : chain) {
+                        merged.putAll(fork.overrides);
+                    }
+                    result = new ForkedPropagationContext(chain.getFirst().parent, merged, this.scopes);
+                    this.collapsed = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the forks from the one closest to the root down to this one
+     */
+    private Deque<ForkedPropagationContext> chain() {
+        Deque<ForkedPropagationContext> chain = new ArrayDeque<>(this.depth);
+        ForkedPropagationContext context = this;
+        chain.push(context);
+        while (context.parent instanceof ForkedPropagationContext) {
+            context = (ForkedPropagationContext) context.parent;
+            chain.push(context);
+        }
+        return chain;
+    }
+
+    /**
+     * @return a copy of all entries visible from this context
+     */
+    private Map<Object, Object> flatten() {
+        Deque<ForkedPropagationContext> chain = chain();
+        Map<Object, Object> entries = new ConcurrentHashMap<>();
+        chain.getFirst().parent.stream().forEach(entry -> entries.put(entry.getKey(), entry.getValue()));
+        for (ForkedPropagationContext fork : chain) {
+            fork.overrides.forEach((key, value) -> {
+                if (value == DELETED) {
+                    entries.remove(key);
+                }
+                else {
+                    entries.put(key, value);
+                }
+            });
+        }
+        return entries;
+    }
+}
@@ -169,6 +169,22 @@ public interface PropagationContext {
     Stream<Map.Entry<Object, Object>> stream();
 
 
+    /**
+     * Creates a child of this {@link PropagationContext}. The child stores only the entries put into or deleted from it and resolves
+     * every other key through this context. The child starts with a copy of this context's {@link #getScopes() scopes} that can be
+     * changed independently.
+     *
+     * A context created by this method can no longer be modified once it has been forked itself; {@link #put(Object, Object)} and
+     * {@link #delete(Object)} then throw an {@link IllegalStateException}. Any other context, e.g. a {@link MapPropagationContext}, is
+     * neither copied nor frozen: later changes to it are visible in all of its descendants, at any depth, for the keys they do not
+     * override.
+     *
+     * @return a new child context
+     */
+    default PropagationContext fork() {
+        return new ForkedPropagationContext(this);
+    }
+
     /**
      * Calls open on all {@link Scope} elements in the context.
      * @return scope
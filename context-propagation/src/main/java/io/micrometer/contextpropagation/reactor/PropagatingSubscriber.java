@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.reactor;
+
+import javax.annotation.Nullable;
+
+import io.micrometer.contextpropagation.PropagationContext;
+import io.micrometer.contextpropagation.ReactiveContextProvider;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Scannable;
+import reactor.util.context.Context;
+
+/**
+ * Makes the captured {@link PropagationContext} current around every signal passed to the actual subscriber. Nothing is opened
+ * when the context is empty.
+ *
+ * @param <T> type of elements
+ * @since 1.0.0
+ */
+final class PropagatingSubscriber<T> implements CoreSubscriber<T>, Scannable {
+
+    private final CoreSubscriber<? super T> actual;
+
+    private final Context context;
+
+    @Nullable
+    private final PropagationContext propagationContext;
+
+    private final boolean propagate;
+
+    private PropagatingSubscriber(CoreSubscriber<? super T> actual, Context context, @Nullable PropagationContext propagationContext) {
+        this.actual = actual;
+        this.context = context;
+        this.propagationContext = propagationContext;
+        this.propagate = propagationContext != null && !propagationContext.isEmpty();
+    }
+
+    /**
+     * Reuses the context captured by the downstream {@link PropagatingSubscriber} if the Reactor context was not modified since,
+     * otherwise asks the provider for a new one.
+     */
+    static <T> CoreSubscriber<? super T> wrap(CoreSubscriber<? super T> actual, ReactiveContextProvider contextProvider) {
+        if (actual instanceof PropagatingSubscriber) {
+            return actual;
+        }
+        Context context = actual.currentContext();
+        PropagatingSubscriber<?> downstream = findDownstream(actual);
+        if (downstream != null && downstream.context == context) {
+            return new PropagatingSubscriber<>(actual, context, downstream.propagationContext);
+        }
+        return new PropagatingSubscriber<>(actual, context, contextProvider.getContext(actual));
+    }
+
+    /**
+     * Walks the {@link Attr#ACTUAL} chain, which also passes through subscribers that are not wrapped, e.g. the inner
+     * subscribers of {@code flatMap} or the ones Reactor inserts to suppress fusion.
+     */
+    @Nullable
+    private static PropagatingSubscriber<?> findDownstream(Object subscriber) {
+        Object current = subscriber;
+        while (current instanceof Scannable) {
+            Object next = ((Scannable) current).scanUnsafe(Attr.ACTUAL);
+            if (next instanceof PropagatingSubscriber) {
+                return (PropagatingSubscriber<?>) next;
+            }
+            if (next == current) {
+                return null;
+            }
+            current = next;
+        }
+        return null;
+    }
+
+    @Override
+    public Context currentContext() {
+        return this.context;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (this.propagate) {
+            ReactorPropagationHooks.runInContext(this.propagationContext, () -> this.actual.onSubscribe(subscription));
+        }
+        else {
+            this.actual.onSubscribe(subscription);
+        }
+    }
+
+    @Override
+    public void onNext(T t) {
+        if (this.propagate) {
+            ReactorPropagationHooks.runInContext(this.propagationContext, () -> this.actual.onNext(t));
+        }
+        else {
+            this.actual.onNext(t);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (this.propagate) {
+            ReactorPropagationHooks.runInContext(this.propagationContext, () -> this.actual.onError(throwable));
+        }
+        else {
+            this.actual.onError(throwable);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        if (this.propagate) {
+            ReactorPropagationHooks.runInContext(this.propagationContext, this.actual::onComplete);
+        }
+        else {
+            this.actual.onComplete();
+        }
+    }
+
+    @Override
+    @Nullable
+    public Object scanUnsafe(Attr key) {
+        if (key == Attr.ACTUAL) {
+            return this.actual;
+        }
+        if (key == Attr.RUN_STYLE) {
+            return Attr.RunStyle.SYNC;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.reactor;
+
+import io.micrometer.contextpropagation.CachingReactiveContextProvider;
+import io.micrometer.contextpropagation.ReactiveContextProvider;
+import org.reactivestreams.Subscriber;
+import reactor.core.CoreSubscriber;
+
+/**
+ * Factories of {@link ReactiveContextProvider} instances for Reactor subscribers.
+ *
+ * @since 1.0.0
+ */
+public final class ReactorContextProviders {
+
+    private static final Object NO_CONTEXT = new Object();
+
+    private ReactorContextProviders() {
+        throw new IllegalStateException("Can't instantiate a utility class");
+    }
+
+    /**
+     * Caches the context built by the delegate until the Reactor context of the subscriber changes. Subscribers that are not a
+     * {@link CoreSubscriber} have no context of their own, so their context is cached for their whole lifetime.
+     *
+     * @param delegate provider that builds the context on a cache miss
+     * @return caching provider
+     */
+    public static CachingReactiveContextProvider cachingByContext(ReactiveContextProvider delegate) {
+        return new CachingReactiveContextProvider(delegate, ReactorContextProviders::contextKey);
+    }
+
+    private static Object contextKey(Subscriber<?> subscriber) {
+        if (subscriber instanceof CoreSubscriber) {
+            return ((CoreSubscriber<?>) subscriber).currentContext();
+        }
+        return NO_CONTEXT;
+    }
+}
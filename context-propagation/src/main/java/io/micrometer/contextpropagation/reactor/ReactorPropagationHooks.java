@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.reactor;
+
+import java.util.function.Function;
+
+import io.micrometer.contextpropagation.PropagationContext;
+import io.micrometer.contextpropagation.ReactiveContextProvider;
+import io.micrometer.contextpropagation.Scope;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Makes the {@link PropagationContext} current around Reactor signals and tasks scheduled on Reactor {@link Schedulers}.
+ *
+ * The context is obtained from the {@link ReactiveContextProvider} once per subscription, when the last operator is subscribed to,
+ * and is reused by every upstream operator as long as the Reactor context is not modified in between (e.g. with
+ * {@code contextWrite}). Scheduled tasks reuse the context that was current when they were scheduled. Empty contexts are never
+ * made current.
+ *
+ * Nested contexts, e.g. below a {@code contextWrite}, are opened on top of the current ones and closed in the reverse order. The
+ * {@link Scope} implementations are expected to restore the state that was current when they were opened, including state opened
+ * outside of these hooks; scopes that only clear their state on close will leave the outer state cleared.
+ *
+ * Every operator gets wrapped in a subscriber that does not support fusion, so enabling the hooks disables operator fusion for all
+ * pipelines assembled afterwards.
+ *
+ * @since 1.0.0
+ */
+public final class ReactorPropagationHooks {
+
+    static final String HOOK_KEY = ReactorPropagationHooks.class.getName();
+
+    /**
+     * The {@link PropagationContext} that is currently open on this thread.
+     */
+    private static final ThreadLocal<PropagationContext> CURRENT = new ThreadLocal<>();
+
+    private ReactorPropagationHooks() {
+        throw new IllegalStateException("Can't instantiate a utility class");
+    }
+
+    /**
+     * Registers the operator and schedule hooks.
+     *
+     * @param contextProvider provides the propagation context from the subscriber, typically from its Reactor context
+     */
+    public static void enable(ReactiveContextProvider contextProvider) {
+        Hooks.onEachOperator(HOOK_KEY, propagatingOperator(contextProvider));
+        Schedulers.onScheduleHook(HOOK_KEY, ReactorPropagationHooks::decorate);
+    }
+
+    /**
+     * Removes the hooks registered by {@link #enable(ReactiveContextProvider)}.
+     */
+    public static void disable() {
+        Hooks.resetOnEachOperator(HOOK_KEY);
+        Schedulers.resetOnScheduleHook(HOOK_KEY);
+    }
+
+    private static <T> Function<? super Publisher<T>, ? extends Publisher<T>> propagatingOperator(ReactiveContextProvider contextProvider) {
+        return Operators.lift((scannable, subscriber) -> PropagatingSubscriber.wrap(subscriber, contextProvider));
+    }
+
+    private static Runnable decorate(Runnable task) {
+        PropagationContext context = CURRENT.get();
+        if (context == null) {
+            return task;
+        }
+        return () -> runInContext(context, task);
+    }
+
+    /**
+     * Runs the action with the given context current, unless it already is. Nested calls form a per-thread stack on the call stack,
+     * so scopes are always closed in the reverse order of opening.
+     */
+    static void runInContext(PropagationContext context, Runnable action) {
+        PropagationContext previous = CURRENT.get();
+        if (previous == context) {
+            action.run();
+            return;
+        }
+        CURRENT.set(context);
+        try (Scope scope = context.makeCurrent()) {
+            action.run();
+        }
+        finally {
+            if (previous == null) {
+                CURRENT.remove();
+            }
+            else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.util.context.Context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class CachingReactiveContextProviderTests {
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    private final ReactiveContextProvider delegate = subscriber -> {
+        builds.incrementAndGet();
+        return new ReactiveMapPropagationContext(((CoreSubscriber<?>) subscriber).currentContext());
+    };
+
+    @Test
+    void shouldReturnSameContextForSameSubscriber() {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate);
+        ContextSubscriber subscriber = new ContextSubscriber(Context.of(String.class, "HELLO"));
+
+        PropagationContext first = provider.getContext(subscriber);
+        PropagationContext second = provider.getContext(subscriber);
+
+        assertThat(second).isSameAs(first);
+        assertThat(first.get(String.class)).isEqualTo("HELLO");
+        assertThat(builds).hasValue(1);
+        assertThat(provider.getHitCount()).isEqualTo(1);
+        assertThat(provider.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldNotShareContextBetweenEqualSubscribers() {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate);
+
+        PropagationContext first = provider.getContext(new ContextSubscriber(Context.of(String.class, "HELLO")));
+        PropagationContext second = provider.getContext(new ContextSubscriber(Context.of(String.class, "HELLO")));
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(provider.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldRebuildContextWhenContextKeyChanges() {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate,
+                subscriber -> ((ContextSubscriber) subscriber).version);
+        ContextSubscriber subscriber = new ContextSubscriber(Context.of(String.class, "HELLO"));
+
+        PropagationContext first = provider.getContext(subscriber);
+        subscriber.context = subscriber.context.put(String.class, "HACKED");
+        PropagationContext stillFirst = provider.getContext(subscriber);
+        subscriber.version = new Object();
+        PropagationContext second = provider.getContext(subscriber);
+        PropagationContext third = provider.getContext(subscriber);
+
+        assertThat(first.get(String.class)).isEqualTo("HELLO");
+        assertThat(second.get(String.class)).isEqualTo("HACKED");
+        assertThat(stillFirst).isSameAs(first);
+        assertThat(third).isSameAs(second);
+        assertThat(provider.getHitCount()).isEqualTo(2);
+        assertThat(provider.getMissCount()).isEqualTo(2);
+        assertThat(provider.size()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCacheContextForSubscriberLifetimeByDefault() {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate);
+        ContextSubscriber subscriber = new ContextSubscriber(Context.of(String.class, "HELLO"));
+
+        PropagationContext first = provider.getContext(subscriber);
+        subscriber.context = subscriber.context.put(String.class, "HACKED");
+        PropagationContext second = provider.getContext(subscriber);
+
+        assertThat(second).isSameAs(first);
+        assertThat(provider.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldRemoveEntryOfCollectedSubscriber() {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate);
+        cacheContextOfNewSubscriber(provider);
+
+        assertThat(provider.size()).isEqualTo(1);
+
+        await().atMost(Duration.ofSeconds(10)).pollInterval(Duration.ofMillis(50)).until(() -> {
+            System.gc();
+            return provider.size() == 0;
+        });
+    }
+
+    @Test
+    void shouldCacheContextPerSubscriberConcurrently() throws Exception {
+        CachingReactiveContextProvider provider = new CachingReactiveContextProvider(delegate);
+        ContextSubscriber subscriber = new ContextSubscriber(Context.of(String.class, "HELLO"));
+        PropagationContext expected = provider.getContext(subscriber);
+        ConcurrentHashMap<PropagationContext, Boolean> seen = new ConcurrentHashMap<>();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    seen.put(provider.getContext(subscriber), true);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(seen.keySet()).containsExactly(expected);
+        assertThat(provider.getHitCount()).isEqualTo(4000);
+    }
+
+    private void cacheContextOfNewSubscriber(CachingReactiveContextProvider provider) {
+        provider.getContext(new ContextSubscriber(Context.of(String.class, "HELLO")));
+    }
+
+    static class ContextSubscriber extends BaseSubscriber<Object> {
+
+        Context context;
+
+        Object version = new Object();
+
+        ContextSubscriber(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public Context currentContext() {
+            return this.context;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+class ForkedPropagationContextTests {
+
+    @Test
+    void childShouldResolveMissingKeysThroughParent() {
+        PropagationContext parent = new MapPropagationContext(new ConcurrentHashMap<>(), new TraceRunnableTests.ThreadLocalScope());
+        parent.put(String.class, "HELLO").put("foo", "bar");
+
+        PropagationContext child = parent.fork().put("foo", "baz").put(Integer.class, 1);
+
+        assertThat(child.get(String.class)).isEqualTo("HELLO");
+        assertThat((String) child.get("foo")).isEqualTo("baz");
+        assertThat(child.get(Integer.class)).isEqualTo(1);
+        assertThat(child.size()).isEqualTo(3);
+        assertThat((String) parent.get("foo")).isEqualTo("bar");
+        assertThat(parent.hasKey(Integer.class)).isFalse();
+    }
+
+    @Test
+    void deleteInChildShouldHideParentEntry() {
+        PropagationContext parent = new MapPropagationContext(new ConcurrentHashMap<>());
+        parent.put("foo", "bar");
+
+        PropagationContext child = parent.fork().delete("foo");
+
+        assertThat(child.hasKey("foo")).isFalse();
+        assertThat(child.getOrEmpty("foo")).isEmpty();
+        assertThat(child.isEmpty()).isTrue();
+        assertThat(child.size()).isZero();
+        assertThat(parent.hasKey("foo")).isTrue();
+
+        child.put("foo", "baz");
+
+        assertThat((String) child.get("foo")).isEqualTo("baz");
+    }
+
+    @Test
+    void childShouldHaveItsOwnScopes() {
+        Scope scope = new TraceRunnableTests.ThreadLocalScope();
+        PropagationContext parent = new MapPropagationContext(new ConcurrentHashMap<>(), scope);
+
+        PropagationContext child = parent.fork();
+        child.getScopes().clear();
+
+        assertThat(parent.getScopes()).containsExactly(scope);
+        assertThat(child.getScopes()).isEmpty();
+    }
+
+    @Test
+    void childShouldMakeMergedEntriesCurrent() {
+        PropagationContext parent = new MapPropagationContext(new ConcurrentHashMap<>(), new TraceRunnableTests.ThreadLocalScope());
+        parent.put(String.class, "HELLO");
+        PropagationContext child = parent.fork().put(String.class, "CHILD");
+
+        try (Scope scope = child.makeCurrent()) {
+            assertThat(TraceRunnableTests.ThreadLocalScope.threadLocal.get()).isEqualTo("CHILD");
+        }
+        try (Scope scope = parent.makeCurrent()) {
+            assertThat(TraceRunnableTests.ThreadLocalScope.threadLocal.get()).isEqualTo("HELLO");
+        }
+    }
+
+    @Test
+    void deepChainShouldBeCollapsed() {
+        PropagationContext context = new MapPropagationContext(new ConcurrentHashMap<>());
+        context.put("level", 0).put("root", "value");
+
+        for (int i = 1; i <= ForkedPropagationContext.MAX_DEPTH * 3; i++) {
+            context = context.fork().put("level", i);
+            assertThat(((ForkedPropagationContext) context).getDepth()).isBetween(1, ForkedPropagationContext.MAX_DEPTH);
+        }
+
+        Map<Object, Object> entries = context.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertThat(entries).containsOnly(entry("level", ForkedPropagationContext.MAX_DEPTH * 3), entry("root", "value"));
+    }
+
+    @Test
+    void siblingsForkedAtMaxDepthShouldShareCollapsedParent() {
+        PropagationContext context = new MapPropagationContext(new ConcurrentHashMap<>());
+        context.put("root", "value");
+        for (int i = 1; i <= ForkedPropagationContext.MAX_DEPTH; i++) {
+            context = context.fork().put("level", i);
+        }
+
+        ForkedPropagationContext first = (ForkedPropagationContext) context.fork().put("child", 1);
+        ForkedPropagationContext second = (ForkedPropagationContext) context.fork().put("child", 2);
+        ForkedPropagationContext third = (ForkedPropagationContext) context.fork();
+
+        assertThat(first.getParent()).isNotSameAs(context).isSameAs(second.getParent()).isSameAs(third.getParent());
+        assertThat((Integer) first.get("child")).isEqualTo(1);
+        assertThat((Integer) second.get("child")).isEqualTo(2);
+        assertThat((Integer) third.get("level")).isEqualTo(ForkedPropagationContext.MAX_DEPTH);
+        assertThat(third.hasKey("child")).isFalse();
+    }
+
+    @Test
+    void forkedContextShouldBeFrozenOnceForked() {
+        PropagationContext parent = new MapPropagationContext(new ConcurrentHashMap<>());
+        PropagationContext child = parent.fork().put("foo", "bar");
+
+        PropagationContext grandChild = child.fork();
+
+        assertThatThrownBy(() -> child.put("foo", "baz")).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> child.delete("foo")).isInstanceOf(IllegalStateException.class);
+        assertThat((String) grandChild.put("foo", "baz").get("foo")).isEqualTo("baz");
+        assertThat((String) child.get("foo")).isEqualTo("bar");
+    }
+
+    @Test
+    void changesToRootShouldBeVisibleAtEveryDepth() {
+        PropagationContext root = new MapPropagationContext(new ConcurrentHashMap<>());
+        PropagationContext context = root;
+        for (int i = 1; i <= ForkedPropagationContext.MAX_DEPTH * 2; i++) {
+            context = context.fork().put("level", i);
+        }
+
+        root.put("late", "value");
+
+        assertThat((String) context.get("late")).isEqualTo("value");
+    }
+
+    @Test
+    void deletedKeyShouldStayHiddenWhenAddedToRootLater() {
+        PropagationContext root = new MapPropagationContext(new ConcurrentHashMap<>());
+        PropagationContext child = root.fork().delete("late");
+
+        root.put("late", "value");
+
+        assertThat(child.hasKey("late")).isFalse();
+        assertThat((String) child.get("late")).isNull();
+        assertThat(child.isEmpty()).isTrue();
+        assertThat(child.size()).isZero();
+        assertThat(child.fork().hasKey("late")).isFalse();
+    }
+
+    @Test
+    void isEmptyShouldHonourDeletesAlongTheChain() {
+        PropagationContext root = new MapPropagationContext(new ConcurrentHashMap<>());
+        root.put("foo", "bar");
+
+        PropagationContext child = root.fork().put("baz", 1);
+        PropagationContext grandChild = child.fork().delete("foo");
+
+        assertThat(grandChild.isEmpty()).isFalse();
+        assertThat(grandChild.fork().delete("baz").isEmpty()).isTrue();
+        assertThat(new MapPropagationContext(new ConcurrentHashMap<>()).fork().isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.reactor;
+
+import io.micrometer.contextpropagation.CachingReactiveContextProvider;
+import io.micrometer.contextpropagation.PropagationContext;
+import io.micrometer.contextpropagation.ReactiveMapPropagationContext;
+import org.junit.jupiter.api.Test;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.util.context.Context;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReactorContextProvidersTests {
+
+    @Test
+    void cachingByContextShouldRebuildContextWhenReactorContextChanges() {
+        CachingReactiveContextProvider provider = ReactorContextProviders.cachingByContext(
+                subscriber -> new ReactiveMapPropagationContext(((CoreSubscriber<?>) subscriber).currentContext()));
+        ContextSubscriber subscriber = new ContextSubscriber(Context.of(String.class, "HELLO"));
+
+        PropagationContext first = provider.getContext(subscriber);
+        PropagationContext stillFirst = provider.getContext(subscriber);
+        subscriber.context = subscriber.context.put(String.class, "HACKED");
+        PropagationContext second = provider.getContext(subscriber);
+
+        assertThat(stillFirst).isSameAs(first);
+        assertThat(first.get(String.class)).isEqualTo("HELLO");
+        assertThat(second.get(String.class)).isEqualTo("HACKED");
+        assertThat(provider.getHitCount()).isEqualTo(1);
+        assertThat(provider.getMissCount()).isEqualTo(2);
+    }
+
+    static class ContextSubscriber extends BaseSubscriber<Object> {
+
+        Context context;
+
+        ContextSubscriber(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public Context currentContext() {
+            return this.context;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.micrometer.contextpropagation.reactor;
+
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.micrometer.contextpropagation.MapPropagationContext;
+import io.micrometer.contextpropagation.PropagationContext;
+import io.micrometer.contextpropagation.ReactiveContextProvider;
+import io.micrometer.contextpropagation.ReactiveMapPropagationContext;
+import io.micrometer.contextpropagation.Scope;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReactorPropagationHooksTests {
+
+    private final AtomicInteger providerCalls = new AtomicInteger();
+
+    private final List<ContextView> providedContexts = new CopyOnWriteArrayList<>();
+
+    private final ReactiveContextProvider contextProvider = subscriber -> {
+        providerCalls.incrementAndGet();
+        providedContexts.add(((CoreSubscriber<?>) subscriber).currentContext());
+        return new ReactiveMapPropagationContext(((CoreSubscriber<?>) subscriber).currentContext(), new ThreadLocalScope());
+    };
+
+    @BeforeEach
+    void setup() {
+        ThreadLocalScope.opened.set(0);
+        ReactorPropagationHooks.enable(contextProvider);
+    }
+
+    @AfterEach
+    void cleanup() {
+        ReactorPropagationHooks.disable();
+    }
+
+    @Test
+    void shouldPropagateContextAcrossPublishOn() {
+        String result = Mono.just("HELLO?")
+                .publishOn(Schedulers.parallel())
+                .map(s -> ThreadLocalScope.threadLocal.get())
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .block();
+
+        assertThat(result).isEqualTo("HELLO");
+        assertThat(ThreadLocalScope.threadLocal.get()).isNull();
+    }
+
+    @Test
+    void shouldPropagateContextAcrossSubscribeOnInFlatMap() {
+        List<String> result = Flux.range(0, 10)
+                .publishOn(Schedulers.parallel())
+                .flatMap(i -> Mono.fromCallable(ThreadLocalScope.threadLocal::get).subscribeOn(Schedulers.boundedElastic()))
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .collectList()
+                .block();
+
+        assertThat(result).hasSize(10).containsOnly("HELLO");
+    }
+
+    @Test
+    void shouldPropagateContextToTasksScheduledWithinSignals() {
+        AtomicReference<String> fromTask = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        Mono.just("HELLO?")
+                .doOnNext(s -> Schedulers.boundedElastic().schedule(() -> {
+                    fromTask.set(ThreadLocalScope.threadLocal.get());
+                    latch.countDown();
+                }))
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .block();
+
+        assertThat(awaitQuietly(latch)).isTrue();
+        assertThat(fromTask).hasValue("HELLO");
+    }
+
+    @Test
+    void shouldCaptureContextOncePerSubscription() {
+        Mono.just("HELLO?")
+                .map(String::toLowerCase)
+                .map(String::toUpperCase)
+                .filter(s -> !s.isEmpty())
+                .publishOn(Schedulers.parallel())
+                .map(String::trim)
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .block();
+
+        // once for the subscriber of contextWrite and once for everything upstream of it
+        assertThat(providerCalls).hasValue(2);
+    }
+
+    @Test
+    void shouldCaptureContextOncePerSubscriptionWithFlatMap() {
+        Flux.range(0, 10)
+                .flatMap(i -> Mono.fromCallable(ThreadLocalScope.threadLocal::get).subscribeOn(Schedulers.boundedElastic()))
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .collectList()
+                .block();
+
+        // once for the subscriber of contextWrite and once for everything upstream of it, including the inner publishers
+        assertThat(providerCalls).hasValue(2);
+    }
+
+    @Test
+    void shouldRestoreScopeOpenedOutsideOfHooks() {
+        PropagationContext callerContext = new MapPropagationContext(new ConcurrentHashMap<>(), new ThreadLocalScope());
+        callerContext.put(String.class, "CALLER");
+
+        try (Scope scope = callerContext.makeCurrent()) {
+            String result = Mono.just("HELLO?")
+                    .map(s -> ThreadLocalScope.threadLocal.get())
+                    .contextWrite(Context.of(String.class, "HELLO"))
+                    .block();
+
+            assertThat(result).isEqualTo("HELLO");
+            assertThat(ThreadLocalScope.threadLocal.get()).isEqualTo("CALLER");
+        }
+        assertThat(ThreadLocalScope.threadLocal.get()).isNull();
+    }
+
+    @Test
+    void shouldRestoreOuterContextAfterNestedContextWrite() {
+        List<String> outer = new CopyOnWriteArrayList<>();
+
+        List<String> inner = Flux.range(0, 10)
+                .publishOn(Schedulers.parallel())
+                .map(i -> String.valueOf(ThreadLocalScope.threadLocal.get()))
+                .contextWrite(Context.of(String.class, "INNER"))
+                .doOnNext(s -> outer.add(String.valueOf(ThreadLocalScope.threadLocal.get())))
+                .contextWrite(Context.of(String.class, "OUTER"))
+                .collectList()
+                .block();
+
+        assertThat(inner).hasSize(10).containsOnly("INNER");
+        assertThat(outer).hasSize(10).containsOnly("OUTER");
+    }
+
+    @Test
+    void shouldNotExposeInternalEntriesInReactorContext() {
+        List<ContextView> userContexts = new CopyOnWriteArrayList<>();
+
+        Mono.just("HELLO?")
+                .map(String::toUpperCase)
+                .transformDeferredContextual((mono, contextView) -> {
+                    userContexts.add(contextView);
+                    return mono;
+                })
+                .contextWrite(Context.of(Integer.class, 1))
+                .map(String::toLowerCase)
+                .contextWrite(Context.of(String.class, "HELLO"))
+                .block();
+
+        assertThat(providedContexts).isNotEmpty().allSatisfy(this::assertOnlyUserEntries);
+        assertThat(userContexts).hasSize(1).allSatisfy(this::assertOnlyUserEntries);
+        assertThat(userContexts.get(0).size()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldNotOpenScopesForEmptyContext() {
+        String result = Mono.just("HELLO?")
+                .publishOn(Schedulers.parallel())
+                .map(s -> String.valueOf(ThreadLocalScope.threadLocal.get()))
+                .block();
+
+        assertThat(result).isEqualTo("null");
+        assertThat(ThreadLocalScope.opened).hasValue(0);
+    }
+
+    private void assertOnlyUserEntries(ContextView contextView) {
+        assertThat(contextView.stream().map(Map.Entry::getKey)).allMatch(key -> key == String.class || key == Integer.class);
+    }
+
+    private boolean awaitQuietly(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Restores the value that was current when it was opened, like the scopes of a tracer.
+     */
+    static class ThreadLocalScope implements Scope {
+
+        static final ThreadLocal<String> threadLocal = new ThreadLocal<>();
+
+        static final ThreadLocal<Deque<String>> previousValues = ThreadLocal.withInitial(LinkedList::new);
+
+        static final AtomicInteger opened = new AtomicInteger();
+
+        @Override
+        public Scope open(PropagationContext propagationContext) {
+            opened.incrementAndGet();
+            previousValues.get().push(threadLocal.get());
+            if (propagationContext.hasKey(String.class)) {
+                threadLocal.set(propagationContext.get(String.class));
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            String previous = previousValues.get().pop();
+            if (previous == null) {
+                threadLocal.remove();
+            }
+            else {
+                threadLocal.set(previous);
+            }
+        }
+    }
+}